@@ -29,7 +29,11 @@ import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Debug;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.movisens.smartgattlib.Characteristic;
@@ -57,7 +61,12 @@ public class BITalinoBLEService extends Service {
     // default state is disconnected
     private int mConnectionState = STATE_DISCONNECTED;
 
-    private boolean mAcquiring = false;
+    // Written from the GATT callback thread when starting the acquisition fails.
+    private volatile boolean mAcquiring = false;
+
+    // Last written state of the digital outputs O1 and O2. The device starts with both low, so
+    // this is cleared whenever the connection goes away.
+    private boolean[] mDigitalOutputs = new boolean[DigitalPort.values().length];
 
     public final static String ACTION_GATT_CONNECTED =
             "com.bitalino.ble.ACTION_GATT_CONNECTED";
@@ -67,14 +76,104 @@ public class BITalinoBLEService extends Service {
             "com.bitalino.ble.ACTION_GATT_SERVICES_DISCOVERED";
     public final static String ACTION_DATA_AVAILABLE =
             "com.bitalino.ble.ACTION_DATA_AVAILABLE";
+    public final static String ACTION_ACQUISITION_FAILED =
+            "com.bitalino.ble.ACTION_ACQUISITION_FAILED";
     public final static String EXTRA_DATA =
             "com.bitalino.ble.EXTRA_DATA";
+    public final static String ACTION_SPECTRAL_FEATURES =
+            "com.bitalino.ble.ACTION_SPECTRAL_FEATURES";
+    public final static String EXTRA_CHANNEL =
+            "com.bitalino.ble.EXTRA_CHANNEL";
+    public final static String EXTRA_MEAN_FREQUENCY =
+            "com.bitalino.ble.EXTRA_MEAN_FREQUENCY";
+    public final static String EXTRA_MEDIAN_FREQUENCY =
+            "com.bitalino.ble.EXTRA_MEDIAN_FREQUENCY";
+    public final static String EXTRA_BAND_POWERS =
+            "com.bitalino.ble.EXTRA_BAND_POWERS";
+    public final static String EXTRA_CPU_LOAD =
+            "com.bitalino.ble.EXTRA_CPU_LOAD";
 
     // BITalino BLE UUIDs
     private static final UUID UUID_EXCHANGE_DATA_SERVICE = UUID.fromString("c566488a-0882-4e1b-a6d0-0b717e652234");
     private static final UUID UUID_CHARACTERISTIC_COMMANDS = UUID.fromString("4051eb11-bf0a-4c74-8730-a48f4193fcea");
     private static final UUID UUID_CHARACTERISTIC_FRAMES = UUID.fromString("40fdba6b-672e-47c4-808a-e529adff3633");
 
+    // Acquisition settings sent by startAcquisition(). The frame decoder, the spectral analysis
+    // and the latency probe all derive their layout and timing from these.
+    private static final int ANALOG_CHANNEL_MASK = 0x3F;
+    private static final int ANALOG_CHANNELS = Integer.bitCount(ANALOG_CHANNEL_MASK);
+    private static final int[] SAMPLING_RATES = {1, 10, 100, 1000};
+    private static final int SAMPLING_RATE_CODE = 3;
+    private static final float SAMPLING_RATE = SAMPLING_RATES[SAMPLING_RATE_CODE];
+
+    // (r)evolution commands: S1 S0 0 0 0 0 1 1 sets the sampling rate, A6..A1 0 1 starts a live
+    // acquisition of the selected channels and 0 stops it.
+    private static final int COMMAND_SAMPLING_RATE = SAMPLING_RATE_CODE << 6 | 0x03;
+    private static final int COMMAND_START_LIVE = ANALOG_CHANNEL_MASK << 2 | 0x01;
+    private static final int COMMAND_NONE = -1;
+
+    // Only one GATT write can be outstanding, so the start command is sent from the write
+    // callback of the sampling rate command.
+    private volatile int mPendingCommand = COMMAND_NONE;
+
+    // Spectral analysis settings. A 1024 sample window gives ~1 Hz resolution at 1000 Hz, and a
+    // 250 sample hop yields 4 feature updates per second.
+    private static final int SPECTRAL_WINDOW_SIZE = 1024;
+    private static final int SPECTRAL_HOP_SIZE = 250;
+
+    private final SpectralAnalyzer mSpectralAnalyzer = new SpectralAnalyzer(ANALOG_CHANNELS,
+            SPECTRAL_WINDOW_SIZE, SPECTRAL_HOP_SIZE, SAMPLING_RATE,
+            new SpectralAnalyzer.Clock() {
+                @Override
+                public long threadCpuNanos() {
+                    final long nanos = Debug.threadCpuTimeNanos();
+                    // -1 if the runtime does not support it, fall back to millisecond resolution.
+                    return nanos >= 0 ? nanos : SystemClock.currentThreadTimeMillis() * 1000000L;
+                }
+            },
+            new SpectralAnalyzer.Listener() {
+                @Override
+                public void onFeatures(int channel, float meanFrequency, float medianFrequency,
+                                       float[] bandPowers) {
+                    broadcastFeatures(channel, meanFrequency, medianFrequency, bandPowers);
+                }
+            });
+
+    private final BITalinoFrameDecoder mFrameDecoder = new BITalinoFrameDecoder(ANALOG_CHANNELS);
+
+    private final BITalinoFrameDecoder.Listener mFrameListener = new BITalinoFrameDecoder.Listener() {
+        @Override
+        public void onFrame(int sequence, int digital, int[] analog) {
+            for (int i = 0; i < ANALOG_CHANNELS; i++) {
+                mSpectralAnalyzer.addSample(i, analog[i]);
+            }
+            final LatencyProbe probe = mLatencyProbe;
+            if (probe != null) {
+                probe.onFrame(sequence, digital);
+            }
+        }
+    };
+
+    // Latency probe settings. Ticks only schedule the toggles, they do not limit the resolution.
+    private static final long LATENCY_PROBE_TICK_MILLIS = 5;
+    private static final long LATENCY_PROBE_TIMEOUT_MILLIS = 2000;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private volatile LatencyProbe mLatencyProbe;
+    // Keeps the results of the last stopped probe reachable after the acquisition ended.
+    private volatile LatencyProbe mLastLatencyProbe;
+
+    private final Runnable mLatencyProbeTick = new Runnable() {
+        @Override
+        public void run() {
+            final LatencyProbe probe = mLatencyProbe;
+            if (probe != null) {
+                probe.tick();
+                mHandler.postDelayed(this, LATENCY_PROBE_TICK_MILLIS);
+            }
+        }
+    };
+
 
     // Implements callback methods for GATT events that the app cares about. For example,
     // connection change and services discovered.
@@ -93,6 +192,9 @@ public class BITalinoBLEService extends Service {
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
                 intentAction = ACTION_GATT_DISCONNECTED;
                 mConnectionState = STATE_DISCONNECTED;
+                mPendingCommand = COMMAND_NONE;
+                mDigitalOutputs = new boolean[DigitalPort.values().length];
+                stopLatencyProbe();
                 Log.i(TAG, "Disconnected from GATT server.");
                 broadcastUpdate(intentAction);
             }
@@ -114,19 +216,68 @@ public class BITalinoBLEService extends Service {
             }
         }
 
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt,
+                                          BluetoothGattCharacteristic characteristic,
+                                          int status) {
+            final int command = mPendingCommand;
+            if (command != COMMAND_NONE
+                    && UUID_CHARACTERISTIC_COMMANDS.equals(characteristic.getUuid())) {
+                mPendingCommand = COMMAND_NONE;
+                if (status != BluetoothGatt.GATT_SUCCESS) {
+                    Log.e(TAG, "Unable to set the sampling rate, status " + status + ".");
+                    mAcquiring = false;
+                    broadcastUpdate(ACTION_ACQUISITION_FAILED);
+                    return;
+                }
+                characteristic.setValue(command, BluetoothGattCharacteristic.FORMAT_UINT8, 0);
+                if (!gatt.writeCharacteristic(characteristic)) {
+                    Log.e(TAG, "Unable to start the acquisition.");
+                    mAcquiring = false;
+                    broadcastUpdate(ACTION_ACQUISITION_FAILED);
+                }
+                return;
+            }
+            final LatencyProbe probe = mLatencyProbe;
+            if (probe != null && UUID_CHARACTERISTIC_COMMANDS.equals(characteristic.getUuid())) {
+                probe.onWriteComplete(status == BluetoothGatt.GATT_SUCCESS);
+            }
+        }
+
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt,
                                             BluetoothGattCharacteristic characteristic) {
+            if (UUID_CHARACTERISTIC_FRAMES.equals(characteristic.getUuid())) {
+                final long crcErrors = mFrameDecoder.getCrcErrors();
+                mFrameDecoder.decode(characteristic.getValue(), mFrameListener);
+                final long newCrcErrors = mFrameDecoder.getCrcErrors();
+                // Persistent CRC errors usually mean the frame layout does not match the
+                // acquisition settings, so make them visible without flooding the log.
+                if (newCrcErrors != crcErrors
+                        && (crcErrors == 0 || newCrcErrors / 1000 != crcErrors / 1000)) {
+                    Log.w(TAG, "Dropped " + newCrcErrors + " frames with CRC errors.");
+                }
+            }
             broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
         }
     };
 
-    // TODO write to digital port
     public enum DigitalPort {
-        ONE,
-        TWO;
+        ONE(BITalinoFrameDecoder.DIGITAL_I1),
+        TWO(BITalinoFrameDecoder.DIGITAL_I2);
+
+        // Bit of the matching digital input in the decoded frames.
+        private final int mInputMask;
+
+        DigitalPort(final int inputMask) {
+            mInputMask = inputMask;
+        }
     }
 
+    /**
+     * Sets a digital output, keeping the other one at its last written state. Both outputs are
+     * assumed to be low after connecting, which is how the device starts.
+     */
     public boolean writeToPort(final DigitalPort port, final boolean value) {
         // TODO replace this with exceptions
         boolean result = false;
@@ -135,9 +286,21 @@ public class BITalinoBLEService extends Service {
             if (s == null) {
                 Log.e(TAG, "BITalino BLE data exchange service not found.");
             } else {
+                final boolean[] outputs = mDigitalOutputs.clone();
+                outputs[port.ordinal()] = value;
+                // Trigger command of the (r)evolution: 1 0 1 1 O2 O1 1 1
+                int command = 0xB3;
+                for (int i = 0; i < outputs.length; i++) {
+                    if (outputs[i]) {
+                        command |= 1 << (2 + i);
+                    }
+                }
                 final BluetoothGattCharacteristic c = s.getCharacteristic(UUID_CHARACTERISTIC_COMMANDS);
-                c.setValue(0x2, BluetoothGattCharacteristic.FORMAT_SINT8, 0);
+                c.setValue(command, BluetoothGattCharacteristic.FORMAT_UINT8, 0);
                 result = mBluetoothGatt.writeCharacteristic(c);
+                if (result) {
+                    mDigitalOutputs = outputs;
+                }
             }
         } else {
             Log.e(TAG, "Device is disconnected.");
@@ -146,6 +309,68 @@ public class BITalinoBLEService extends Service {
         return result;
     }
 
+    /**
+     * Starts measuring the round-trip latency by toggling {@code output} every
+     * {@code intervalMillis} and watching for the change on {@code input}, which must be wired
+     * to it. Requires a running acquisition; results are available through
+     * {@link #getLatencyProbe()} while it runs and through {@link #getLastLatencyProbe()} once it
+     * was stopped, including by {@link #stopAcquisition()}, a disconnect or {@link #close()}.
+     */
+    public boolean startLatencyProbe(final DigitalPort output, final DigitalPort input,
+                                     final long intervalMillis) {
+        if (!mAcquiring) {
+            Log.e(TAG, "Latency probe requires a running acquisition.");
+            return false;
+        }
+        if (intervalMillis <= 0) {
+            Log.e(TAG, "Invalid latency probe interval: " + intervalMillis + "ms.");
+            return false;
+        }
+        stopLatencyProbe();
+        mLatencyProbe = new LatencyProbe(
+                new LatencyProbe.OutputWriter() {
+                    @Override
+                    public boolean write(boolean value) {
+                        return writeToPort(output, value);
+                    }
+                },
+                new LatencyProbe.Clock() {
+                    @Override
+                    public long nanoTime() {
+                        return SystemClock.elapsedRealtimeNanos();
+                    }
+                },
+                input.mInputMask, SAMPLING_RATE, intervalMillis * 1000000L,
+                LATENCY_PROBE_TIMEOUT_MILLIS * 1000000L);
+        mHandler.post(mLatencyProbeTick);
+        return true;
+    }
+
+    public void stopLatencyProbe() {
+        final LatencyProbe probe = mLatencyProbe;
+        if (probe == null) {
+            return;
+        }
+        mLatencyProbe = null;
+        mLastLatencyProbe = probe;
+        mHandler.removeCallbacks(mLatencyProbeTick);
+        Log.i(TAG, "Latency probe results:\n" + probe);
+    }
+
+    /**
+     * @return The running latency probe, or null if there is none.
+     */
+    public LatencyProbe getLatencyProbe() {
+        return mLatencyProbe;
+    }
+
+    /**
+     * @return The most recently stopped latency probe, or null if none was stopped yet.
+     */
+    public LatencyProbe getLastLatencyProbe() {
+        return mLastLatencyProbe;
+    }
+
     public boolean startAcquisition(){
         // TODO replace this with exceptions
         boolean result = false;
@@ -155,10 +380,14 @@ public class BITalinoBLEService extends Service {
                 Log.e(TAG, "BITalino BLE data exchange service not found.");
             } else {
                 final BluetoothGattCharacteristic c = s.getCharacteristic(UUID_CHARACTERISTIC_COMMANDS);
-                c.setValue(0x2, BluetoothGattCharacteristic.FORMAT_SINT8, 0);
+                c.setValue(COMMAND_SAMPLING_RATE, BluetoothGattCharacteristic.FORMAT_UINT8, 0);
+                mPendingCommand = COMMAND_START_LIVE;
                 result = mBluetoothGatt.writeCharacteristic(c);
                 if (result) {
+                    mSpectralAnalyzer.reset();
                     mAcquiring = true;
+                } else {
+                    mPendingCommand = COMMAND_NONE;
                 }
             }
         } else {
@@ -180,6 +409,7 @@ public class BITalinoBLEService extends Service {
                 c.setValue(0x0, BluetoothGattCharacteristic.FORMAT_SINT8, 0);
                 result = mBluetoothGatt.writeCharacteristic(c);
                 if (result) {
+                    stopLatencyProbe();
                     mAcquiring = false;
                 }
             }
@@ -229,6 +459,39 @@ public class BITalinoBLEService extends Service {
         sendBroadcast(intent);
     }
 
+    private void broadcastFeatures(final int channel, final float meanFrequency,
+                                   final float medianFrequency, final float[] bandPowers) {
+        final Intent intent = new Intent(ACTION_SPECTRAL_FEATURES);
+        intent.putExtra(EXTRA_CHANNEL, channel);
+        intent.putExtra(EXTRA_MEAN_FREQUENCY, meanFrequency);
+        intent.putExtra(EXTRA_MEDIAN_FREQUENCY, medianFrequency);
+        intent.putExtra(EXTRA_BAND_POWERS, bandPowers.clone());
+        intent.putExtra(EXTRA_CPU_LOAD, mSpectralAnalyzer.getCpuLoad(channel));
+        sendBroadcast(intent);
+    }
+
+    /**
+     * @return The number of frames dropped because of CRC errors. A steadily growing count means
+     * the device does not send the frame layout the decoder expects.
+     */
+    public long getFrameCrcErrors() {
+        return mFrameDecoder.getCrcErrors();
+    }
+
+    /**
+     * @return The fraction of one CPU core spent on spectral analysis of {@code channel}.
+     */
+    public float getSpectralCpuLoad(final int channel) {
+        return mSpectralAnalyzer.getCpuLoad(channel);
+    }
+
+    /**
+     * @return The average CPU time spent per spectral update of {@code channel}, in nanoseconds.
+     */
+    public long getSpectralUpdateNanos(final int channel) {
+        return mSpectralAnalyzer.getAverageUpdateNanos(channel);
+    }
+
     public class LocalBinder extends Binder {
         BITalinoBLEService getService() {
             return BITalinoBLEService.this;
@@ -335,6 +598,8 @@ public class BITalinoBLEService extends Service {
      * released properly.
      */
     public void close() {
+        stopLatencyProbe();
+        mDigitalOutputs = new boolean[DigitalPort.values().length];
         if (mBluetoothGatt == null) {
             return;
         }
@@ -0,0 +1,134 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitalino.ble;
+
+/**
+ * Decodes the frames sent by a BITalino (r)evolution through the frames characteristic. A single
+ * notification may carry several frames back to back; frames failing the CRC check are dropped.
+ * The decoder reuses its sample buffer, so listeners must copy anything they want to keep.
+ */
+public class BITalinoFrameDecoder {
+
+    // Digital bits as found in the upper nibble of the second to last frame byte.
+    public static final int DIGITAL_I1 = 0x8;
+    public static final int DIGITAL_I2 = 0x4;
+    public static final int DIGITAL_O1 = 0x2;
+    public static final int DIGITAL_O2 = 0x1;
+
+    public static final int MAX_ANALOG_CHANNELS = 6;
+
+    public interface Listener {
+        /**
+         * Called once per valid frame.
+         *
+         * @param sequence 4-bit frame sequence number.
+         * @param digital  Digital bits, see {@code DIGITAL_*}.
+         * @param analog   Analog samples, valid up to the configured channel count.
+         */
+        void onFrame(int sequence, int digital, int[] analog);
+    }
+
+    private final int mChannels;
+    private final int mFrameSize;
+    private final int[] mAnalog = new int[MAX_ANALOG_CHANNELS];
+
+    private volatile long mCrcErrors = 0;
+
+    public BITalinoFrameDecoder(final int channels) {
+        if (channels < 1 || channels > MAX_ANALOG_CHANNELS) {
+            throw new IllegalArgumentException("Invalid number of analog channels: " + channels);
+        }
+        mChannels = channels;
+        mFrameSize = frameSize(channels);
+    }
+
+    /**
+     * @return The size in bytes of a frame carrying the given number of analog channels.
+     */
+    public static int frameSize(final int channels) {
+        if (channels <= 4) {
+            return (12 + 10 * channels + 7) / 8;
+        }
+        return (52 + 6 * (channels - 4) + 7) / 8;
+    }
+
+    public int getChannels() {
+        return mChannels;
+    }
+
+    public long getCrcErrors() {
+        return mCrcErrors;
+    }
+
+    /**
+     * Decodes all complete frames in {@code data}.
+     *
+     * @return The number of valid frames passed to the listener.
+     */
+    public int decode(final byte[] data, final Listener listener) {
+        if (data == null) {
+            return 0;
+        }
+        int frames = 0;
+        for (int offset = 0; offset + mFrameSize <= data.length; offset += mFrameSize) {
+            if (!checkCrc(data, offset)) {
+                mCrcErrors++;
+                continue;
+            }
+            final int end = offset + mFrameSize;
+            final int last = data[end - 1] & 0xFF;
+            final int b2 = data[end - 2] & 0xFF;
+            final int b3 = data[end - 3] & 0xFF;
+
+            mAnalog[0] = (b2 & 0x0F) << 6 | b3 >> 2;
+            if (mChannels > 1) {
+                mAnalog[1] = (b3 & 0x03) << 8 | data[end - 4] & 0xFF;
+            }
+            if (mChannels > 2) {
+                mAnalog[2] = (data[end - 5] & 0xFF) << 2 | (data[end - 6] & 0xFF) >> 6;
+            }
+            if (mChannels > 3) {
+                mAnalog[3] = (data[end - 6] & 0x3F) << 4 | (data[end - 7] & 0xFF) >> 4;
+            }
+            if (mChannels > 4) {
+                mAnalog[4] = (data[end - 7] & 0x0F) << 2 | (data[end - 8] & 0xFF) >> 6;
+            }
+            if (mChannels > 5) {
+                mAnalog[5] = data[end - 8] & 0x3F;
+            }
+
+            listener.onFrame(last >> 4, b2 >> 4, mAnalog);
+            frames++;
+        }
+        return frames;
+    }
+
+    // CRC-4 over the whole frame, with the CRC nibble itself taken as zero.
+    private boolean checkCrc(final byte[] data, final int offset) {
+        final int end = offset + mFrameSize;
+        int x = 0;
+        for (int i = offset; i < end; i++) {
+            final int b = i == end - 1 ? data[i] & 0xF0 : data[i] & 0xFF;
+            for (int bit = 7; bit >= 0; bit--) {
+                x <<= 1;
+                if ((x & 0x10) != 0) {
+                    x ^= 0x03;
+                }
+                x ^= (b >> bit) & 0x01;
+            }
+        }
+        return (x & 0x0F) == (data[end - 1] & 0x0F);
+    }
+}
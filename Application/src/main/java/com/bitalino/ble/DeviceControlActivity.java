@@ -93,6 +93,7 @@ public class DeviceControlActivity extends Activity {
     // ACTION_GATT_SERVICES_DISCOVERED: discovered GATT services.
     // ACTION_DATA_AVAILABLE: received data from the device.  This can be a result of read
     //                        or notification operations.
+    // ACTION_ACQUISITION_FAILED: the device did not accept the acquisition start.
     private final BroadcastReceiver mGattUpdateReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -106,6 +107,8 @@ public class DeviceControlActivity extends Activity {
                 updateConnectionState(com.bitalino.ble.R.string.disconnected);
                 invalidateOptionsMenu();
                 clearUI();
+            } else if (BITalinoBLEService.ACTION_ACQUISITION_FAILED.equals(action)) {
+                invalidateOptionsMenu();
             }
         }
     };
@@ -288,6 +291,7 @@ public class DeviceControlActivity extends Activity {
         intentFilter.addAction(BITalinoBLEService.ACTION_GATT_DISCONNECTED);
         intentFilter.addAction(BITalinoBLEService.ACTION_GATT_SERVICES_DISCOVERED);
         intentFilter.addAction(BITalinoBLEService.ACTION_DATA_AVAILABLE);
+        intentFilter.addAction(BITalinoBLEService.ACTION_ACQUISITION_FAILED);
         return intentFilter;
     }
 }
@@ -0,0 +1,122 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitalino.ble;
+
+/**
+ * Fixed-bin latency histogram. Values beyond the last bin are counted in an overflow bin and
+ * still contribute to the minimum, maximum and mean.
+ */
+public class LatencyHistogram {
+
+    private final long mBinNanos;
+    private final long[] mBins;
+    private long mOverflow;
+    private long mCount;
+    private long mSum;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax = Long.MIN_VALUE;
+
+    public LatencyHistogram(final long binNanos, final int bins) {
+        if (binNanos <= 0 || bins <= 0) {
+            throw new IllegalArgumentException("Invalid histogram layout: " + bins + " bins of "
+                    + binNanos + "ns");
+        }
+        mBinNanos = binNanos;
+        mBins = new long[bins];
+    }
+
+    public synchronized void add(final long nanos) {
+        final long bin = Math.max(0, nanos) / mBinNanos;
+        if (bin < mBins.length) {
+            mBins[(int) bin]++;
+        } else {
+            mOverflow++;
+        }
+        mCount++;
+        mSum += nanos;
+        mMin = Math.min(mMin, nanos);
+        mMax = Math.max(mMax, nanos);
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < mBins.length; i++) {
+            mBins[i] = 0;
+        }
+        mOverflow = 0;
+        mCount = 0;
+        mSum = 0;
+        mMin = Long.MAX_VALUE;
+        mMax = Long.MIN_VALUE;
+    }
+
+    public long getBinNanos() {
+        return mBinNanos;
+    }
+
+    public int getBinCount() {
+        return mBins.length;
+    }
+
+    public synchronized long getBin(final int bin) {
+        return mBins[bin];
+    }
+
+    public synchronized long getOverflow() {
+        return mOverflow;
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized long getMin() {
+        return mCount == 0 ? 0 : mMin;
+    }
+
+    public synchronized long getMax() {
+        return mCount == 0 ? 0 : mMax;
+    }
+
+    public synchronized long getMean() {
+        return mCount == 0 ? 0 : mSum / mCount;
+    }
+
+    /**
+     * @param fraction Percentile as a fraction in [0, 1].
+     * @return The upper edge of the bin containing the given percentile, or the maximum if it
+     * falls into the overflow bin.
+     */
+    public synchronized long getPercentile(final double fraction) {
+        if (mCount == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(fraction * mCount));
+        long cumulative = 0;
+        for (int i = 0; i < mBins.length; i++) {
+            cumulative += mBins[i];
+            if (cumulative >= rank) {
+                return Math.min(mMax, (i + 1) * mBinNanos);
+            }
+        }
+        return mMax;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("n=%d min=%.1fms mean=%.1fms p50=%.1fms p95=%.1fms max=%.1fms",
+                mCount, getMin() / 1e6, getMean() / 1e6, getPercentile(0.5) / 1e6,
+                getPercentile(0.95) / 1e6, getMax() / 1e6);
+    }
+}
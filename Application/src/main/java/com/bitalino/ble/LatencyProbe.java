@@ -0,0 +1,219 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitalino.ble;
+
+/**
+ * Measures the phone-to-device-to-phone latency with a digital output wired back to a digital
+ * input. On every {@link #tick()} past the configured interval the output is toggled, and the
+ * first frame whose input bit reflects the new level closes the measurement.
+ *
+ * Each round trip is split into three parts:
+ * <ul>
+ * <li>write: from issuing the command until the GATT write is acknowledged,</li>
+ * <li>air: from the acknowledgement until the device sampled the changed input,</li>
+ * <li>delivery: from the device sampling the frame until its notification reached us.</li>
+ * </ul>
+ * The device sampling time is estimated from the frame count and the sampling rate, anchored at
+ * the earliest relative arrival seen over the current and the previous toggle interval, i.e. the
+ * lower envelope of the delivery delay. Restarting the envelope every interval keeps clock drift
+ * between phone and device out of the estimate. Without a shared clock the constant part of the
+ * delivery delay cannot be observed, so delivery is the excess over the best case and the
+ * constant part is accounted to air.
+ *
+ * The probe only talks to the outside world through {@link Clock} and {@link OutputWriter}, so
+ * it can be driven by a simulated device as well as by {@link BITalinoBLEService}.
+ */
+public class LatencyProbe {
+
+    public interface Clock {
+        long nanoTime();
+    }
+
+    public interface OutputWriter {
+        /**
+         * Sets the looped back digital output.
+         *
+         * @return true if the command was issued.
+         */
+        boolean write(boolean value);
+    }
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_WAITING_WRITE = 1;
+    private static final int STATE_WAITING_INPUT = 2;
+
+    private static final long HISTOGRAM_BIN_NANOS = 1000000L;
+    private static final int HISTOGRAM_BINS = 1000;
+
+    private final OutputWriter mWriter;
+    private final Clock mClock;
+    private final int mInputMask;
+    private final double mNanosPerSample;
+    private final long mIntervalNanos;
+    private final long mTimeoutNanos;
+
+    private final LatencyHistogram mTotal = new LatencyHistogram(HISTOGRAM_BIN_NANOS, HISTOGRAM_BINS);
+    private final LatencyHistogram mWrite = new LatencyHistogram(HISTOGRAM_BIN_NANOS, HISTOGRAM_BINS);
+    private final LatencyHistogram mAir = new LatencyHistogram(HISTOGRAM_BIN_NANOS, HISTOGRAM_BINS);
+    private final LatencyHistogram mDelivery = new LatencyHistogram(HISTOGRAM_BIN_NANOS, HISTOGRAM_BINS);
+
+    private int mState = STATE_IDLE;
+    private long mNextToggle;
+    private boolean mTarget;
+    private long mWriteStart;
+    private long mWriteAck;
+    private boolean mWriteAcked;
+
+    // Frame bookkeeping.
+    private boolean mHaveFrame = false;
+    private int mLastSequence;
+    private long mSampleIndex;
+    private boolean mInputLevel;
+    private long mClockOffset = Long.MAX_VALUE;
+    private long mPreviousClockOffset = Long.MAX_VALUE;
+
+    private long mTimeouts = 0;
+    private long mWriteFailures = 0;
+
+    /**
+     * @param writer       Sets the digital output.
+     * @param clock        Monotonic time source.
+     * @param inputMask    Bit of the looped back input, see {@code BITalinoFrameDecoder.DIGITAL_I*}.
+     * @param samplingRate Frame rate of the acquisition, in Hz.
+     * @param intervalNanos Time between toggles.
+     * @param timeoutNanos Time after which an unanswered toggle is counted as lost.
+     */
+    public LatencyProbe(final OutputWriter writer, final Clock clock, final int inputMask,
+                        final float samplingRate, final long intervalNanos,
+                        final long timeoutNanos) {
+        if (samplingRate <= 0 || intervalNanos <= 0 || timeoutNanos <= 0) {
+            throw new IllegalArgumentException("Invalid latency probe timing.");
+        }
+        mWriter = writer;
+        mClock = clock;
+        mInputMask = inputMask;
+        mNanosPerSample = 1e9 / samplingRate;
+        mIntervalNanos = intervalNanos;
+        mTimeoutNanos = timeoutNanos;
+        mNextToggle = clock.nanoTime();
+    }
+
+    /**
+     * Toggles the output when due and expires unanswered toggles. Must be called regularly; its
+     * period bounds the scheduling jitter of the toggles but not the measured latencies.
+     */
+    public synchronized void tick() {
+        final long now = mClock.nanoTime();
+        if (mState != STATE_IDLE && now - mWriteStart > mTimeoutNanos) {
+            mTimeouts++;
+            mState = STATE_IDLE;
+        }
+        if (mState != STATE_IDLE || now < mNextToggle || !mHaveFrame) {
+            return;
+        }
+        mNextToggle = now + mIntervalNanos;
+        mTarget = !mInputLevel;
+        mWriteStart = now;
+        mWriteAcked = false;
+        mPreviousClockOffset = mClockOffset;
+        mClockOffset = Long.MAX_VALUE;
+        mState = STATE_WAITING_WRITE;
+        if (!mWriter.write(mTarget)) {
+            mWriteFailures++;
+            mState = STATE_IDLE;
+        }
+    }
+
+    /**
+     * Reports the outcome of the command write issued by the last toggle.
+     */
+    public synchronized void onWriteComplete(final boolean success) {
+        if (mState != STATE_WAITING_WRITE) {
+            return;
+        }
+        if (!success) {
+            mWriteFailures++;
+            mState = STATE_IDLE;
+            return;
+        }
+        mWriteAck = mClock.nanoTime();
+        mWriteAcked = true;
+        mState = STATE_WAITING_INPUT;
+    }
+
+    /**
+     * Reports a decoded frame as soon as its notification arrived.
+     */
+    public synchronized void onFrame(final int sequence, final int digital) {
+        final long now = mClock.nanoTime();
+        if (mHaveFrame) {
+            final int delta = (sequence - mLastSequence) & 0x0F;
+            mSampleIndex += delta == 0 ? 16 : delta;
+        } else {
+            // Collect one interval of arrivals before the first toggle to anchor the device time.
+            mNextToggle = Math.max(mNextToggle, now + mIntervalNanos);
+        }
+        mHaveFrame = true;
+        mLastSequence = sequence;
+        mInputLevel = (digital & mInputMask) != 0;
+
+        final long deviceTime = (long) (mSampleIndex * mNanosPerSample);
+        mClockOffset = Math.min(mClockOffset, now - deviceTime);
+        if (mState == STATE_IDLE || mInputLevel != mTarget) {
+            return;
+        }
+
+        final long sampled = Math.min(mClockOffset, mPreviousClockOffset) + deviceTime;
+        mTotal.add(now - mWriteStart);
+        mDelivery.add(now - sampled);
+        // The input may show up before the write callback; the split is then unknown.
+        if (mWriteAcked) {
+            mWrite.add(mWriteAck - mWriteStart);
+            mAir.add(Math.max(0, sampled - mWriteAck));
+        }
+        mState = STATE_IDLE;
+    }
+
+    public LatencyHistogram getTotal() {
+        return mTotal;
+    }
+
+    public LatencyHistogram getWrite() {
+        return mWrite;
+    }
+
+    public LatencyHistogram getAir() {
+        return mAir;
+    }
+
+    public LatencyHistogram getDelivery() {
+        return mDelivery;
+    }
+
+    public synchronized long getTimeouts() {
+        return mTimeouts;
+    }
+
+    public synchronized long getWriteFailures() {
+        return mWriteFailures;
+    }
+
+    @Override
+    public String toString() {
+        return "total: " + mTotal + "\nwrite: " + mWrite + "\nair: " + mAir
+                + "\ndelivery: " + mDelivery + "\ntimeouts: " + getTimeouts()
+                + ", write failures: " + getWriteFailures();
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitalino.ble;
+
+/**
+ * Streaming spectral analysis over a sliding window per channel. Every {@code hopSize} samples
+ * the last {@code windowSize} samples of a channel are Hann-windowed and transformed with a
+ * radix-2 FFT, from which the mean and median frequency (EMG) and the classic EEG band powers
+ * are derived. All tables and buffers are allocated up front, so {@link #addSample(int, float)}
+ * never allocates. The CPU time spent in each update is accumulated per channel so the cost of
+ * the stage can be reported. It is read from a {@link Clock} that should count CPU time of the
+ * calling thread, so preemption on a busy phone does not inflate it.
+ *
+ * Samples are normally fed from the GATT callback thread while {@link #reset()} and the cost
+ * getters are called from others, so all public methods are synchronized. The listener is
+ * called with the lock held.
+ */
+public class SpectralAnalyzer {
+
+    public static final int BAND_DELTA = 0;
+    public static final int BAND_THETA = 1;
+    public static final int BAND_ALPHA = 2;
+    public static final int BAND_BETA = 3;
+    public static final int BAND_GAMMA = 4;
+    public static final int BAND_COUNT = 5;
+
+    // Band edges in Hz, band i spans [BAND_EDGES[i], BAND_EDGES[i + 1]).
+    private static final float[] BAND_EDGES = {0.5f, 4f, 8f, 13f, 30f, 45f};
+
+    public interface Clock {
+        /**
+         * @return CPU time consumed by the calling thread, in nanoseconds.
+         */
+        long threadCpuNanos();
+    }
+
+    public interface Listener {
+        /**
+         * Called once per hop and channel. {@code bandPowers} is reused between calls.
+         */
+        void onFeatures(int channel, float meanFrequency, float medianFrequency,
+                        float[] bandPowers);
+    }
+
+    private final int mChannels;
+    private final int mWindowSize;
+    private final int mHopSize;
+    private final float mSamplingRate;
+    private final Clock mClock;
+    private final Listener mListener;
+
+    // Precomputed tables.
+    private final float[] mWindow;
+    private final float[] mCos;
+    private final float[] mSin;
+    private final int[] mBitReverse;
+    private final float mPowerScale;
+    private final int[] mBandStart = new int[BAND_COUNT];
+    private final int[] mBandEnd = new int[BAND_COUNT];
+
+    // Per channel sliding windows.
+    private final float[][] mHistory;
+    private final int[] mWritePos;
+    private final int[] mFilled;
+    private final int[] mSinceUpdate;
+
+    // Shared scratch buffers.
+    private final float[] mRe;
+    private final float[] mIm;
+    private final float[] mPower;
+    private final float[] mBandPowers = new float[BAND_COUNT];
+
+    // CPU cost accounting.
+    private final long[] mUpdateNanos;
+    private final long[] mUpdates;
+
+    public SpectralAnalyzer(final int channels, final int windowSize, final int hopSize,
+                            final float samplingRate, final Clock clock,
+                            final Listener listener) {
+        if (channels < 1) {
+            throw new IllegalArgumentException("Invalid number of channels: " + channels);
+        }
+        if (windowSize < 2 || (windowSize & (windowSize - 1)) != 0) {
+            throw new IllegalArgumentException("Window size must be a power of two: " + windowSize);
+        }
+        if (hopSize < 1 || hopSize > windowSize) {
+            throw new IllegalArgumentException("Invalid hop size: " + hopSize);
+        }
+        mChannels = channels;
+        mWindowSize = windowSize;
+        mHopSize = hopSize;
+        mSamplingRate = samplingRate;
+        mClock = clock;
+        mListener = listener;
+
+        mWindow = new float[windowSize];
+        double windowEnergy = 0;
+        for (int i = 0; i < windowSize; i++) {
+            mWindow[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / windowSize));
+            windowEnergy += mWindow[i] * mWindow[i];
+        }
+        // One-sided power, scaled so that the sum over all bins matches the signal variance.
+        mPowerScale = (float) (2.0 / (windowSize * windowEnergy));
+
+        mCos = new float[windowSize / 2];
+        mSin = new float[windowSize / 2];
+        for (int i = 0; i < windowSize / 2; i++) {
+            mCos[i] = (float) Math.cos(2 * Math.PI * i / windowSize);
+            mSin[i] = (float) -Math.sin(2 * Math.PI * i / windowSize);
+        }
+
+        mBitReverse = new int[windowSize];
+        final int bits = Integer.numberOfTrailingZeros(windowSize);
+        for (int i = 0; i < windowSize; i++) {
+            mBitReverse[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+
+        final float binWidth = samplingRate / windowSize;
+        final int lastBin = windowSize / 2;
+        for (int b = 0; b < BAND_COUNT; b++) {
+            mBandStart[b] = Math.min(lastBin + 1, (int) Math.ceil(BAND_EDGES[b] / binWidth));
+            mBandEnd[b] = Math.min(lastBin + 1, (int) Math.ceil(BAND_EDGES[b + 1] / binWidth));
+        }
+
+        mHistory = new float[channels][windowSize];
+        mWritePos = new int[channels];
+        mFilled = new int[channels];
+        mSinceUpdate = new int[channels];
+
+        mRe = new float[windowSize];
+        mIm = new float[windowSize];
+        mPower = new float[lastBin + 1];
+
+        mUpdateNanos = new long[channels];
+        mUpdates = new long[channels];
+    }
+
+    public int getChannels() {
+        return mChannels;
+    }
+
+    /**
+     * Appends a sample to the window of {@code channel}, running an update once a full window
+     * is available and {@code hopSize} new samples have arrived since the last one.
+     */
+    public synchronized void addSample(final int channel, final float sample) {
+        final float[] history = mHistory[channel];
+        history[mWritePos[channel]] = sample;
+        mWritePos[channel] = (mWritePos[channel] + 1) & (mWindowSize - 1);
+        if (mFilled[channel] < mWindowSize) {
+            mFilled[channel]++;
+        }
+        if (++mSinceUpdate[channel] >= mHopSize && mFilled[channel] == mWindowSize) {
+            mSinceUpdate[channel] = 0;
+            update(channel);
+        }
+    }
+
+    /**
+     * Clears all windows and CPU cost counters.
+     */
+    public synchronized void reset() {
+        for (int c = 0; c < mChannels; c++) {
+            mWritePos[c] = 0;
+            mFilled[c] = 0;
+            mSinceUpdate[c] = 0;
+            mUpdateNanos[c] = 0;
+            mUpdates[c] = 0;
+        }
+    }
+
+    public synchronized long getUpdateCount(final int channel) {
+        return mUpdates[channel];
+    }
+
+    /**
+     * @return The average CPU time spent per update of {@code channel}, in nanoseconds.
+     */
+    public synchronized long getAverageUpdateNanos(final int channel) {
+        return mUpdates[channel] == 0 ? 0 : mUpdateNanos[channel] / mUpdates[channel];
+    }
+
+    /**
+     * @return The fraction of one CPU core needed to keep up with {@code channel} in real time,
+     * i.e. the CPU time spent in updates divided by the signal time they covered.
+     */
+    public synchronized float getCpuLoad(final int channel) {
+        if (mUpdates[channel] == 0) {
+            return 0f;
+        }
+        final double signalNanos = mUpdates[channel] * mHopSize * 1e9 / mSamplingRate;
+        return (float) (mUpdateNanos[channel] / signalNanos);
+    }
+
+    private void update(final int channel) {
+        final long start = mClock.threadCpuNanos();
+
+        // Unroll the ring buffer oldest first, removing the DC offset of the ADC.
+        final float[] history = mHistory[channel];
+        final int oldest = mWritePos[channel];
+        float mean = 0;
+        for (int i = 0; i < mWindowSize; i++) {
+            mean += history[i];
+        }
+        mean /= mWindowSize;
+        for (int i = 0; i < mWindowSize; i++) {
+            final int j = mBitReverse[i];
+            mRe[j] = (history[(oldest + i) & (mWindowSize - 1)] - mean) * mWindow[i];
+            mIm[j] = 0;
+        }
+        fft();
+
+        float total = 0;
+        float weighted = 0;
+        final float binWidth = mSamplingRate / mWindowSize;
+        for (int k = 1; k < mPower.length; k++) {
+            final float p = (mRe[k] * mRe[k] + mIm[k] * mIm[k]) * mPowerScale;
+            mPower[k] = p;
+            total += p;
+            weighted += p * k * binWidth;
+        }
+
+        float meanFrequency = 0;
+        float medianFrequency = 0;
+        if (total > 0) {
+            meanFrequency = weighted / total;
+            final float half = total / 2;
+            float cumulative = 0;
+            for (int k = 1; k < mPower.length; k++) {
+                cumulative += mPower[k];
+                if (cumulative >= half) {
+                    medianFrequency = k * binWidth;
+                    break;
+                }
+            }
+        }
+
+        for (int b = 0; b < BAND_COUNT; b++) {
+            float p = 0;
+            for (int k = Math.max(1, mBandStart[b]); k < mBandEnd[b]; k++) {
+                p += mPower[k];
+            }
+            mBandPowers[b] = p;
+        }
+
+        mUpdateNanos[channel] += mClock.threadCpuNanos() - start;
+        mUpdates[channel]++;
+
+        if (mListener != null) {
+            mListener.onFeatures(channel, meanFrequency, medianFrequency, mBandPowers);
+        }
+    }
+
+    // In-place iterative radix-2 FFT over mRe/mIm, which must already be in bit-reversed order.
+    private void fft() {
+        for (int size = 2; size <= mWindowSize; size <<= 1) {
+            final int half = size >> 1;
+            final int step = mWindowSize / size;
+            for (int i = 0; i < mWindowSize; i += size) {
+                for (int j = 0; j < half; j++) {
+                    final float wr = mCos[j * step];
+                    final float wi = mSin[j * step];
+                    final int a = i + j;
+                    final int b = a + half;
+                    final float tr = mRe[b] * wr - mIm[b] * wi;
+                    final float ti = mRe[b] * wi + mIm[b] * wr;
+                    mRe[b] = mRe[a] - tr;
+                    mIm[b] = mIm[a] - ti;
+                    mRe[a] += tr;
+                    mIm[a] += ti;
+                }
+            }
+        }
+    }
+}
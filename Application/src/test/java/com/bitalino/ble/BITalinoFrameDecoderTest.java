@@ -0,0 +1,121 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitalino.ble;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class BITalinoFrameDecoderTest {
+
+    /**
+     * Builds a 6-channel (r)evolution frame with a valid CRC-4.
+     */
+    static byte[] frame(final int sequence, final int digital, final int[] a) {
+        final byte[] f = new byte[8];
+        f[7] = (byte) (sequence << 4);
+        f[6] = (byte) (digital << 4 | a[0] >> 6);
+        f[5] = (byte) ((a[0] & 0x3F) << 2 | a[1] >> 8);
+        f[4] = (byte) (a[1] & 0xFF);
+        f[3] = (byte) (a[2] >> 2);
+        f[2] = (byte) ((a[2] & 0x03) << 6 | a[3] >> 4);
+        f[1] = (byte) ((a[3] & 0x0F) << 4 | a[4] >> 2);
+        f[0] = (byte) ((a[4] & 0x03) << 6 | a[5]);
+        f[7] |= crc4(f);
+        return f;
+    }
+
+    private static int crc4(final byte[] f) {
+        int x = 0;
+        for (byte b : f) {
+            for (int bit = 7; bit >= 0; bit--) {
+                x <<= 1;
+                if ((x & 0x10) != 0) {
+                    x ^= 0x03;
+                }
+                x ^= (b >> bit) & 0x01;
+            }
+        }
+        return x & 0x0F;
+    }
+
+    private static class Recorder implements BITalinoFrameDecoder.Listener {
+        final List<int[]> frames = new ArrayList<int[]>();
+
+        @Override
+        public void onFrame(int sequence, int digital, int[] analog) {
+            final int[] f = new int[2 + analog.length];
+            f[0] = sequence;
+            f[1] = digital;
+            System.arraycopy(analog, 0, f, 2, analog.length);
+            frames.add(f);
+        }
+    }
+
+    @Test
+    public void frameSizeMatchesChannelCount() {
+        final int[] expected = {3, 4, 6, 7, 8, 8};
+        for (int channels = 1; channels <= 6; channels++) {
+            assertEquals(expected[channels - 1], BITalinoFrameDecoder.frameSize(channels));
+        }
+    }
+
+    @Test
+    public void decodesSixChannelFrame() {
+        final int[] analog = {1023, 512, 1, 700, 63, 42};
+        final BITalinoFrameDecoder decoder = new BITalinoFrameDecoder(6);
+        final Recorder recorder = new Recorder();
+
+        assertEquals(1, decoder.decode(frame(9, BITalinoFrameDecoder.DIGITAL_I1
+                | BITalinoFrameDecoder.DIGITAL_O2, analog), recorder));
+
+        assertArrayEquals(new int[]{9, 0x9, 1023, 512, 1, 700, 63, 42}, recorder.frames.get(0));
+        assertEquals(0, decoder.getCrcErrors());
+    }
+
+    @Test
+    public void dropsFrameWithCorruptedCrc() {
+        final byte[] f = frame(3, 0, new int[]{1, 2, 3, 4, 5, 6});
+        f[2] ^= 0x10;
+        final BITalinoFrameDecoder decoder = new BITalinoFrameDecoder(6);
+        final Recorder recorder = new Recorder();
+
+        assertEquals(0, decoder.decode(f, recorder));
+        assertEquals(0, recorder.frames.size());
+        assertEquals(1, decoder.getCrcErrors());
+    }
+
+    @Test
+    public void decodesSeveralFramesInOneNotification() {
+        final byte[] data = new byte[8 * 3 + 5];
+        for (int i = 0; i < 3; i++) {
+            System.arraycopy(frame(i, 0, new int[]{i, i, i, i, i, i}), 0, data, 8 * i, 8);
+        }
+        // A corrupted middle frame must not affect its neighbours; the partial tail is ignored.
+        data[8 + 3] ^= 0x01;
+        final BITalinoFrameDecoder decoder = new BITalinoFrameDecoder(6);
+        final Recorder recorder = new Recorder();
+
+        assertEquals(2, decoder.decode(data, recorder));
+        assertEquals(0, recorder.frames.get(0)[0]);
+        assertEquals(2, recorder.frames.get(1)[0]);
+        assertEquals(2, recorder.frames.get(1)[2]);
+        assertEquals(1, decoder.getCrcErrors());
+    }
+}
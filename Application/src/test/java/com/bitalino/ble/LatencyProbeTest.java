@@ -0,0 +1,134 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitalino.ble;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyProbeTest {
+
+    private static final long MS = 1000000L;
+    private static final long INTERVAL = 200 * MS;
+    private static final long TIMEOUT = 100 * MS;
+    private static final long TICK = MS;
+    private static final long DURATION = 20000 * MS;
+
+    // Expected number of toggles over DURATION, allowing for the start-up and the last interval.
+    private static final long MIN_TOGGLES = DURATION / INTERVAL - 2;
+
+    private static LatencyProbe attach(final SimulatedLoopbackDevice device) {
+        final LatencyProbe probe = new LatencyProbe(device, device,
+                BITalinoFrameDecoder.DIGITAL_I1, SimulatedLoopbackDevice.SAMPLING_RATE,
+                INTERVAL, TIMEOUT);
+        device.attach(probe);
+        return probe;
+    }
+
+    @Test
+    public void splitsRoundTripIntoWriteAirAndDelivery() {
+        final SimulatedLoopbackDevice device = new SimulatedLoopbackDevice();
+        final LatencyProbe probe = attach(device);
+
+        device.run(DURATION, TICK);
+
+        assertTrue(probe.getTotal().getCount() >= MIN_TOGGLES);
+        assertEquals(probe.getTotal().getCount(), probe.getWrite().getCount());
+        assertEquals(0, probe.getTimeouts());
+        assertEquals(0, probe.getWriteFailures());
+        assertEquals(15 * MS, probe.getWrite().getMin());
+        assertEquals(15 * MS, probe.getWrite().getMax());
+        // The best-case delivery seen is accounted to air, so air can only be overestimated.
+        assertTrue(probe.getAir().getMin() >= 5 * MS);
+        assertTrue(probe.getAir().getMean() <= 7 * MS);
+        // Random delay plus waiting for the next connection event.
+        assertTrue(probe.getDelivery().getMax() <= 15 * MS + 7500000L);
+        assertTrue(probe.getTotal().getMin() >= 20 * MS);
+    }
+
+    @Test
+    public void recordsTotalOnlyWhenInputArrivesBeforeWriteCallback() {
+        final SimulatedLoopbackDevice device = new SimulatedLoopbackDevice();
+        device.writeAckNanos = 80 * MS;
+        device.outputNanos = 5 * MS;
+        device.maxDeliveryNanos = 0;
+        final LatencyProbe probe = attach(device);
+
+        device.run(DURATION, TICK);
+
+        assertTrue(probe.getTotal().getCount() >= MIN_TOGGLES);
+        assertEquals(0, probe.getWrite().getCount());
+        assertEquals(0, probe.getAir().getCount());
+        assertTrue(probe.getTotal().getMax() < 80 * MS);
+        assertEquals(0, probe.getTimeouts());
+    }
+
+    @Test
+    public void countsTimeoutWhenLoopbackIsOpen() {
+        final SimulatedLoopbackDevice device = new SimulatedLoopbackDevice();
+        device.loopbackConnected = false;
+        final LatencyProbe probe = attach(device);
+
+        device.run(DURATION, TICK);
+
+        assertEquals(0, probe.getTotal().getCount());
+        assertTrue(probe.getTimeouts() >= MIN_TOGGLES);
+    }
+
+    @Test
+    public void countsWriteFailures() {
+        final SimulatedLoopbackDevice device = new SimulatedLoopbackDevice();
+        device.writesIssued = false;
+        final LatencyProbe probe = attach(device);
+
+        device.run(DURATION, TICK);
+
+        assertEquals(0, probe.getTotal().getCount());
+        assertEquals(0, probe.getTimeouts());
+        assertTrue(probe.getWriteFailures() >= MIN_TOGGLES);
+    }
+
+    @Test
+    public void countsFailedWriteCallbacks() {
+        final SimulatedLoopbackDevice device = new SimulatedLoopbackDevice();
+        device.writesSucceed = false;
+        final LatencyProbe probe = attach(device);
+
+        device.run(DURATION, TICK);
+
+        assertEquals(0, probe.getTotal().getCount());
+        assertEquals(0, probe.getTimeouts());
+        assertTrue(probe.getWriteFailures() >= MIN_TOGGLES);
+    }
+
+    @Test
+    public void keepsDeviceTimeAcrossSequenceWrapsAndDroppedFrames() {
+        final SimulatedLoopbackDevice device = new SimulatedLoopbackDevice();
+        device.dropEvery = 7;
+        final LatencyProbe probe = attach(device);
+
+        // Long enough for thousands of sequence wraps; a miscounted frame would let the
+        // estimated device time drift away and show up in the air time.
+        device.run(3 * DURATION, TICK);
+
+        assertTrue(probe.getTotal().getCount() >= 3 * MIN_TOGGLES);
+        assertEquals(15 * MS, probe.getWrite().getMean());
+        // A dropped frame can delay the detection by one more frame period.
+        assertTrue(probe.getAir().getMin() >= 5 * MS);
+        assertTrue(probe.getAir().getMean() <= 8 * MS);
+        assertTrue(probe.getAir().getMax() <= 12 * MS);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitalino.ble;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+
+/**
+ * Discrete-time BITalino with digital output O1 wired to input I1, driving a {@link LatencyProbe}
+ * through its clock and output writer. Frames are sampled at 1 kHz, collected per connection
+ * event and delivered as one notification after a random delay. Notifications stay in order.
+ */
+class SimulatedLoopbackDevice implements LatencyProbe.Clock, LatencyProbe.OutputWriter {
+
+    static final float SAMPLING_RATE = 1000f;
+
+    private static final long STEP_NANOS = 100000L;
+    private static final long FRAME_NANOS = 1000000L;
+
+    // Configurable behaviour, all times in nanoseconds.
+    long writeAckNanos = 15000000L;
+    long airNanos = 5000000L;
+    long connectionIntervalNanos = 7500000L;
+    long maxDeliveryNanos = 15000000L;
+    boolean writesIssued = true;
+    boolean writesSucceed = true;
+    boolean loopbackConnected = true;
+    // Drop every n-th frame, as if it failed its CRC; 0 keeps all frames.
+    int dropEvery = 0;
+    // When set, the output changes this long after the write instead of after the ack and air.
+    long outputNanos = -1;
+
+    private final Random mRandom = new Random(42);
+    private final ArrayDeque<long[]> mInFlight = new ArrayDeque<long[]>();
+    private final ArrayDeque<long[]> mBatch = new ArrayDeque<long[]>();
+
+    private LatencyProbe mProbe;
+    private long mNow = 0;
+    private long mLastArrival = 0;
+    private int mSequence = 0;
+    private long mFrames = 0;
+    private boolean mOutput = false;
+    private boolean mInput = false;
+    private boolean mPendingValue;
+    private long mAckAt = -1;
+    private long mApplyAt = -1;
+
+    void attach(final LatencyProbe probe) {
+        mProbe = probe;
+    }
+
+    @Override
+    public long nanoTime() {
+        return mNow;
+    }
+
+    @Override
+    public boolean write(final boolean value) {
+        if (!writesIssued) {
+            return false;
+        }
+        mPendingValue = value;
+        mAckAt = mNow + writeAckNanos;
+        mApplyAt = mNow + (outputNanos >= 0 ? outputNanos : writeAckNanos + airNanos);
+        return true;
+    }
+
+    /**
+     * Runs the simulation, ticking the probe every {@code tickNanos}.
+     */
+    void run(final long durationNanos, final long tickNanos) {
+        final long end = mNow + durationNanos;
+        for (; mNow < end; mNow += STEP_NANOS) {
+            if (mAckAt >= 0 && mNow >= mAckAt) {
+                mAckAt = -1;
+                mProbe.onWriteComplete(writesSucceed);
+            }
+            if (mApplyAt >= 0 && mNow >= mApplyAt) {
+                mApplyAt = -1;
+                if (writesSucceed) {
+                    mOutput = mPendingValue;
+                    if (loopbackConnected) {
+                        mInput = mOutput;
+                    }
+                }
+            }
+            if (mNow % FRAME_NANOS == 0) {
+                sample();
+            }
+            if (mNow % connectionIntervalNanos == 0 && !mBatch.isEmpty()) {
+                final long delay = (long) (mRandom.nextDouble() * maxDeliveryNanos);
+                mLastArrival = Math.max(mLastArrival, mNow + delay);
+                while (!mBatch.isEmpty()) {
+                    final long[] frame = mBatch.poll();
+                    mInFlight.add(new long[]{mLastArrival, frame[0], frame[1]});
+                }
+            }
+            while (!mInFlight.isEmpty() && mInFlight.peek()[0] <= mNow) {
+                final long[] frame = mInFlight.poll();
+                mProbe.onFrame((int) frame[1], (int) frame[2]);
+            }
+            if (mNow % tickNanos == 0) {
+                mProbe.tick();
+            }
+        }
+    }
+
+    private void sample() {
+        final int sequence = mSequence;
+        mSequence = (mSequence + 1) & 0x0F;
+        mFrames++;
+        if (dropEvery > 0 && mFrames % dropEvery == 0) {
+            return;
+        }
+        final int digital = (mInput ? BITalinoFrameDecoder.DIGITAL_I1 : 0)
+                | (mOutput ? BITalinoFrameDecoder.DIGITAL_O1 : 0);
+        mBatch.add(new long[]{sequence, digital});
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bitalino.ble;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SpectralAnalyzerTest {
+
+    private static final float SAMPLING_RATE = 1000f;
+    private static final int WINDOW = 1024;
+    private static final int HOP = 250;
+
+    // Advances by a fixed amount on every reading, so each update costs exactly STEP.
+    private static class FakeClock implements SpectralAnalyzer.Clock {
+        static final long STEP = 1000;
+        long now = 0;
+
+        @Override
+        public long threadCpuNanos() {
+            now += STEP;
+            return now;
+        }
+    }
+
+    private static class Recorder implements SpectralAnalyzer.Listener {
+        int updates = 0;
+        int channel = -1;
+        float mean;
+        float median;
+        final float[] bands = new float[SpectralAnalyzer.BAND_COUNT];
+
+        @Override
+        public void onFeatures(int channel, float meanFrequency, float medianFrequency,
+                               float[] bandPowers) {
+            updates++;
+            this.channel = channel;
+            mean = meanFrequency;
+            median = medianFrequency;
+            System.arraycopy(bandPowers, 0, bands, 0, bands.length);
+        }
+    }
+
+    private static void feedSine(final SpectralAnalyzer analyzer, final int channel,
+                                 final double frequency, final int samples) {
+        for (int i = 0; i < samples; i++) {
+            analyzer.addSample(channel,
+                    (float) (512 + 100 * Math.sin(2 * Math.PI * frequency * i / SAMPLING_RATE)));
+        }
+    }
+
+    @Test
+    public void alphaSineIsAssignedToAlphaBand() {
+        final Recorder recorder = new Recorder();
+        final SpectralAnalyzer analyzer = new SpectralAnalyzer(1, WINDOW, HOP, SAMPLING_RATE,
+                new FakeClock(), recorder);
+
+        feedSine(analyzer, 0, 10, 3000);
+
+        final float binWidth = SAMPLING_RATE / WINDOW;
+        assertEquals(10f, recorder.mean, 0.1f);
+        assertEquals(10f, recorder.median, binWidth);
+        // An amplitude of 100 has a variance of 5000, all of it within the alpha band.
+        assertEquals(5000f, recorder.bands[SpectralAnalyzer.BAND_ALPHA], 50f);
+        for (int b = 0; b < SpectralAnalyzer.BAND_COUNT; b++) {
+            if (b != SpectralAnalyzer.BAND_ALPHA) {
+                assertTrue(recorder.bands[b] < 50f);
+            }
+        }
+    }
+
+    @Test
+    public void emgRangeSineMovesMeanAndMedianFrequency() {
+        final Recorder recorder = new Recorder();
+        final SpectralAnalyzer analyzer = new SpectralAnalyzer(2, WINDOW, HOP, SAMPLING_RATE,
+                new FakeClock(), recorder);
+
+        feedSine(analyzer, 1, 120, 2000);
+
+        assertEquals(1, recorder.channel);
+        assertEquals(120f, recorder.mean, 0.5f);
+        assertEquals(120f, recorder.median, SAMPLING_RATE / WINDOW);
+        assertEquals(0, analyzer.getUpdateCount(0));
+    }
+
+    @Test
+    public void updatesOncePerHopAfterFirstFullWindow() {
+        final Recorder recorder = new Recorder();
+        final SpectralAnalyzer analyzer = new SpectralAnalyzer(1, WINDOW, HOP, SAMPLING_RATE,
+                new FakeClock(), recorder);
+
+        feedSine(analyzer, 0, 10, WINDOW - 1);
+        assertEquals(0, recorder.updates);
+
+        feedSine(analyzer, 0, 10, 1 + 3 * HOP);
+        assertEquals(4, recorder.updates);
+        assertEquals(4, analyzer.getUpdateCount(0));
+    }
+
+    @Test
+    public void reportsCpuCostPerChannel() {
+        final SpectralAnalyzer analyzer = new SpectralAnalyzer(1, WINDOW, HOP, SAMPLING_RATE,
+                new FakeClock(), null);
+
+        feedSine(analyzer, 0, 10, WINDOW + HOP);
+
+        assertEquals(FakeClock.STEP, analyzer.getAverageUpdateNanos(0));
+        // One STEP of CPU time per HOP samples of signal.
+        assertEquals(FakeClock.STEP / (HOP * 1e9 / SAMPLING_RATE), analyzer.getCpuLoad(0), 1e-9);
+
+        analyzer.reset();
+        assertEquals(0, analyzer.getUpdateCount(0));
+        assertEquals(0f, analyzer.getCpuLoad(0), 0f);
+    }
+}